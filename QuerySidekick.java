@@ -6,122 +6,2124 @@
   Course: Algorithms and Data Structures
   Section: 3
 
-  Description of the overall algorithm: Autocomplete search engine, provide top 5 guesses for each character of a query
+  Description of the overall algorithm: Autocomplete search engine, provide top k (5 unless set) guesses for each character of a query
 */
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntToLongFunction;
+import java.util.function.LongSupplier;
 
 public class QuerySidekick {
 
     // Trie
     static class Node {
-        HashMap<Character, Node> next = new HashMap<>();
-        ArrayList<String> top = new ArrayList<>(5);
+        static final Node[] NO_KIDS = new Node[0];
+        static final char[] NO_TAIL = new char[0];
+        static final int SMALL = 8;        // Up to this many children are kept in a sorted array, more go to a hash table
+
+        final char ch;                     // First char of the edge leading into this node, what the parent finds it by
+        final char[] tail;                 // Rest of the edge in a radix trie, where a run of single children is one node
+        volatile Node[] kids = NO_KIDS;    // Sorted by ch and exactly sized while small, open addressed table once large.
+                                           // Always replaced, never written in place, so sessions can walk it while it grows
+        int size;                          // Children count in table mode
+        int term = -1;                     // Id of the query ending at this node, -1 if none
+        volatile Top top = Top.EMPTY;
+
+        Node(char ch) {
+            this(ch, NO_TAIL);
+        }
+
+        Node(char ch, char[] tail) {
+            this.ch = ch;
+            this.tail = tail;
+        }
+
+        // Child reached by ch, null if there is none
+        Node child(char ch) {
+            Node[] k = kids;
+            if (k.length <= SMALL) {
+                for (Node n : k) {
+                    if (n.ch >= ch) {
+                        return n.ch == ch ? n : null;
+                    }
+                }
+                return null;
+            }
+            int mask = k.length - 1;
+            for (int i = slot(ch) & mask; ; i = (i + 1) & mask) {      // Table is never full so this ends
+                Node n = k[i];
+                if (n == null || n.ch == ch) {
+                    return n;
+                }
+            }
+        }
+
+        // Adds n, there must be no child with its ch yet
+        Node add(Node n) {
+            char ch = n.ch;
+            Node[] k = kids;
+            if (k.length < SMALL) {            // Copy into a one bigger array, keeps small nodes exactly sized
+                Node[] grown = new Node[k.length + 1];
+                int i = 0;
+                while (i < k.length && k[i].ch < ch) {
+                    grown[i] = k[i];
+                    i++;
+                }
+                grown[i] = n;
+                System.arraycopy(k, i, grown, i + 1, k.length - i);
+                kids = grown;
+            } else {
+                Node[] table;
+                if (k.length == SMALL) {                 // Outgrew the sorted array, switch to a table
+                    table = rehash(k, SMALL * 4);
+                    size = SMALL;
+                } else if ((size + 1) * 2 > k.length) {  // Keep the table under half full
+                    table = rehash(k, k.length * 2);
+                } else {
+                    table = k.clone();
+                }
+                put(table, n);
+                size++;
+                kids = table;
+            }
+            return n;
+        }
+
+        // Puts n where the child with the same ch was, in a copy so a session walking the old array isn't disturbed
+        void replace(Node n) {
+            Node[] k = kids.clone();
+            if (k.length <= SMALL) {
+                int i = 0;
+                while (k[i].ch != n.ch) {
+                    i++;
+                }
+                k[i] = n;
+            } else {
+                int mask = k.length - 1;
+                int i = slot(n.ch) & mask;
+                while (k[i].ch != n.ch) {
+                    i = (i + 1) & mask;
+                }
+                k[i] = n;
+            }
+            kids = k;
+        }
+
+        // Cuts the edge into child kid after at chars of its tail, returns the new upper half that takes kid's
+        // place. kid itself is left as it was, the lower half is a copy, so sessions on it still see a whole trie
+        Node split(Node kid, int at) {
+            Node lower = new Node(kid.tail[at], Arrays.copyOfRange(kid.tail, at + 1, kid.tail.length));
+            lower.kids = kid.kids;
+            lower.size = kid.size;
+            lower.term = kid.term;
+            lower.top = kid.top;
+            Node upper = new Node(kid.ch, Arrays.copyOf(kid.tail, at));
+            upper.kids = new Node[] {lower};
+            upper.top = kid.top;
+            replace(upper);
+            return upper;
+        }
+
+        private static Node[] rehash(Node[] kids, int capacity) {
+            Node[] table = new Node[capacity];
+            for (Node n : kids) {
+                if (n != null) {
+                    put(table, n);
+                }
+            }
+            return table;
+        }
+
+        private static void put(Node[] table, Node n) {
+            int mask = table.length - 1;
+            int i = slot(n.ch) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = n;
+        }
+
+        // Children in label order, the table is compacted and sorted into a new array
+        Node[] sortedKids() {
+            Node[] k = kids;
+            if (k.length <= SMALL) {
+                return k;
+            }
+            Node[] sorted = new Node[size];
+            int n = 0;
+            for (Node kid : k) {
+                if (kid != null) {
+                    sorted[n++] = kid;
+                }
+            }
+            Arrays.sort(sorted, (a, b) -> a.ch - b.ch);
+            return sorted;
+        }
+
+        // Spread the char bits so runs of letters don't pile up in one part of the table
+        private static int slot(char ch) {
+            int h = ch * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    // Top k queries of a node, best first, as query ids each with its score cached so ranking rarely goes
+    // back to the counts. A cached score can fall behind when its query goes up somewhere it was already first,
+    // so it is only ever a lower bound and gets checked before anything is ranked above it.
+    // Never changed once made, feedback swaps in a new one, so readers always see a whole list.
+    // With decay on, scores are only comparable within one epoch, a list from an older one is re-ranked when touched
+    static final class Top {
+        static final Top EMPTY = new Top(new int[0], new long[0], 0);
+
+        final int[] ids;
+        final long[] scores;
+        final int epoch;               // Decay epoch the scores were worked out in
+
+        Top(int[] ids, long[] scores, int epoch) {
+            this.ids = ids;
+            this.scores = scores;
+            this.epoch = epoch;
+        }
+
+        // Where query is ranked, -1 if it isn't
+        int indexOf(int query) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == query) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Top k of two lists, like the lists of two children. Ties keep a's entry in front. A query in both, which
+        // only the word trie has, is taken once where it ranks higher.
+        // When one list wins outright it comes back as is, so a parent shares it instead of holding a copy
+        static Top merge(Top a, Top b, int k) {
+            if (b.ids.length == 0 || a.ids.length == k && a.scores[k - 1] >= b.scores[0]) {
+                return a;
+            }
+            if (a.ids.length == 0 || b.ids.length == k && b.scores[k - 1] > a.scores[0]) {
+                return b;
+            }
+            int length = Math.min(k, a.ids.length + b.ids.length);
+            int[] ids = new int[length];
+            long[] scores = new long[length];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (n < length && (i < a.ids.length || j < b.ids.length)) {
+                int id;
+                long score;
+                if (j == b.ids.length || (i < a.ids.length && a.scores[i] >= b.scores[j])) {
+                    id = a.ids[i];
+                    score = a.scores[i++];
+                } else {
+                    id = b.ids[j];
+                    score = b.scores[j++];
+                }
+                if (!taken(ids, n, id)) {
+                    ids[n] = id;
+                    scores[n++] = score;
+                }
+            }
+            if (n < length) {
+                ids = Arrays.copyOf(ids, n);
+                scores = Arrays.copyOf(scores, n);
+            }
+            return new Top(ids, scores, Math.min(a.epoch, b.epoch));
+        }
+
+        // Whether query is among the first n of ids
+        static boolean taken(int[] ids, int n, int query) {
+            for (int i = 0; i < n; i++) {
+                if (ids[i] == query) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Lowercases, trims and collapses whitespace in one pass, writing into a buffer that is reused between queries
+    static class Fixer {
+        char[] chars = new char[256];
+        int length;                // Chars written so far
+        int kept;                  // Length without the trailing whitespace trim would cut
+        boolean run;               // Last char written stands for a whitespace run
+
+        void reset() {
+            length = 0;
+            kept = 0;
+            run = false;
+        }
+
+        // Adds the next char, already lowercased
+        void append(char c) {
+            if (c <= ' ') {
+                if (length == 0) {                 // Leading, trim drops anything up to space
+                    return;
+                }
+                if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {     // What \\s matches
+                    if (run) {
+                        return;
+                    }
+                    run = true;
+                    c = ' ';
+                } else {
+                    run = false;
+                }
+            } else {
+                run = false;
+            }
+            if (length == chars.length) {
+                chars = Arrays.copyOf(chars, length * 2);
+            }
+            chars[length++] = c;
+            if (c > ' ') {
+                kept = length;
+            }
+        }
+
+        // Same as s.toLowerCase().trim().replaceAll("\\s+", " "), but s comes back as is when it was already fixed
+        String fix(String s) {
+            boolean lowered = !ASCII_LOWERCASE;
+            if (lowered) {
+                s = s.toLowerCase();
+            }
+            reset();
+            boolean changed = false;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80 && !lowered) {       // Lowercasing outside ASCII can change the length, do it up front and start over
+                    s = s.toLowerCase();
+                    lowered = true;
+                    reset();
+                    changed = false;
+                    i = -1;
+                    continue;
+                }
+                int before = length;
+                append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+                changed |= length == before || chars[before] != c;
+            }
+            if (!changed && kept == length) {
+                return s;
+            }
+            return new String(chars, 0, kept);
+        }
+    }
+
+    // Every distinct query gets a small int id, in the order they are first seen, and its count is kept by id.
+    // Lookups by chars find a query that was seen before without making a String. Ids are never taken back,
+    // so a session still on an older trie can always read the texts of the ids it has
+    static class Queries {
+        private volatile String[] texts = new String[1024];     // Replaced when it grows, sessions read it unlocked
+        int[] counts = new int[1024];
+        private int[] hashes = new int[1024];
+        private int[] slots = new int[2048];                 // Open addressed, id + 1 of each query, 0 when empty
+        int size;
+
+        String text(int id) {
+            return texts[id];
+        }
+
+        // Adds n to the count of the query in chars[0, length), giving it an id first if it is new
+        int add(char[] chars, int length, int n) {
+            if (length == 0) {
+                return -1;
+            }
+            int hash = 0;
+            for (int i = 0; i < length; i++) {      // Same hash as String, so both add methods agree
+                hash = 31 * hash + chars[i];
+            }
+            int mask = slots.length - 1;
+            int i = spread(hash) & mask;
+            for (; slots[i] != 0; i = (i + 1) & mask) {
+                int id = slots[i] - 1;
+                if (hashes[id] == hash && matches(texts[id], chars, length)) {
+                    counts[id] += n;
+                    return id;
+                }
+            }
+            return put(i, new String(chars, 0, length), hash, n);
+        }
+
+        int add(String query, int n) {
+            int hash = query.hashCode();
+            int mask = slots.length - 1;
+            int i = spread(hash) & mask;
+            for (; slots[i] != 0; i = (i + 1) & mask) {
+                int id = slots[i] - 1;
+                if (hashes[id] == hash && texts[id].equals(query)) {
+                    counts[id] += n;
+                    return id;
+                }
+            }
+            return put(i, query, hash, n);
+        }
+
+        // Forgets every query, for scratch tables that get reused
+        void clear() {
+            Arrays.fill(slots, 0);
+            Arrays.fill(counts, 0, size, 0);
+            size = 0;
+        }
+
+        private int put(int slot, String query, int hash, int n) {
+            int id = size++;
+            String[] t = texts;
+            if (id == t.length) {
+                t = Arrays.copyOf(t, id * 2);
+                counts = Arrays.copyOf(counts, id * 2);
+                hashes = Arrays.copyOf(hashes, id * 2);
+            }
+            t[id] = query;
+            texts = t;                 // Volatile write, publishes the text (and the bigger array) to sessions
+            hashes[id] = hash;
+            counts[id] = n;
+            slots[slot] = id + 1;
+            if (size * 2 > slots.length) {
+                slots = new int[slots.length * 2];
+                int mask = slots.length - 1;
+                for (int i = 0; i < size; i++) {
+                    int k = spread(hashes[i]) & mask;
+                    while (slots[k] != 0) {
+                        k = (k + 1) & mask;
+                    }
+                    slots[k] = i + 1;
+                }
+            }
+            return id;
+        }
+
+        private static boolean matches(String key, char[] chars, int length) {
+            if (key.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key.charAt(i) != chars[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    // Read only copy of the trie packed into flat arrays, nodes are numbered breadth first with the root at 0.
+    // The arrays sit behind buffers so the same code walks a freshly frozen trie and one mapped from a saved file
+    static class Packed {
+        static final int MAGIC = 0x51534B31;       // "QSK1"
+        static final int VERSION = 4;             // 2 added the edge tails of radix tries, 3 the list length k, 4 terms
+        static final int HEADER = 28;              // Bytes before the arrays: magic, version, node, query, text byte and tail char counts, k
+
+        final int nodes;
+        final int queryCount;
+        final int k;
+        final IntBuffer firstKid;      // Children of node i are the ids firstKid[i] to firstKid[i + 1] - 1, sorted by label
+        final CharBuffer label;        // First char of the edge leading into node i
+        final IntBuffer tailStart;     // Rest of that edge is tails[tailStart[i]] to tails[tailStart[i + 1] - 1]
+        final CharBuffer tails;
+        final IntBuffer term;          // Query ending at node i, -1 if none
+        final IntBuffer top;           // Top k of node i at top[i * k], as query ids, -1 for empty slots
+        private final Queries queries;           // Texts and counts of a frozen trie, which shares the engine's ids
+        private final long[] scores;             // Engine's score of each query in it when it was frozen, null if not
+        private final IntBuffer count;           // The rest is only there for a mapped trie, which brings its own
+        private final String[] pool;             // Query texts, decoded from the file the first time they are asked for
+        private final IntBuffer textStart;       // Where each query's UTF-8 starts in texts
+        private final ByteBuffer texts;
+
+        // Flattens the trie rooted at root, walking it breadth first so every node's children get neighbouring ids.
+        // score, when there is one, is taken for every query in it so sessions can rank without the engine
+        Packed(Node root, Queries queries, int k, IntToLongFunction score) {
+            this.k = k;
+            ArrayList<Node> order = new ArrayList<>();
+            order.add(root);
+            int[] first = new int[16];
+            for (int i = 0; i < order.size(); i++) {
+                if (i + 1 >= first.length) {
+                    first = Arrays.copyOf(first, first.length * 2);
+                }
+                first[i] = order.size();
+                for (Node kid : order.get(i).sortedKids()) {
+                    order.add(kid);
+                }
+            }
+            nodes = order.size();
+            first[nodes] = nodes;
+            char[] labels = new char[nodes];
+            int[] tailAt = new int[nodes + 1];
+            int[] terms = new int[nodes];
+            int[] tops = new int[nodes * k];
+            Arrays.fill(tops, -1);
+            for (int i = 0; i < nodes; i++) {
+                Node node = order.get(i);
+                labels[i] = node.ch;
+                tailAt[i + 1] = tailAt[i] + node.tail.length;
+                terms[i] = node.term;
+                int[] ids = node.top.ids;
+                System.arraycopy(ids, 0, tops, i * k, ids.length);
+            }
+            char[] rest = new char[tailAt[nodes]];
+            for (int i = 0; i < nodes; i++) {
+                char[] tail = order.get(i).tail;
+                System.arraycopy(tail, 0, rest, tailAt[i], tail.length);
+            }
+            queryCount = queries.size;
+            firstKid = IntBuffer.wrap(Arrays.copyOf(first, nodes + 1));
+            label = CharBuffer.wrap(labels);
+            tailStart = IntBuffer.wrap(tailAt);
+            tails = CharBuffer.wrap(rest);
+            term = IntBuffer.wrap(terms);
+            top = IntBuffer.wrap(tops);
+            this.queries = queries;
+            if (score != null) {
+                scores = new long[queries.size];
+                for (int id : terms) {
+                    if (id >= 0) {
+                        scores[id] = score.applyAsLong(id);
+                    }
+                }
+            } else {
+                scores = null;
+            }
+            count = null;
+            pool = null;
+            textStart = null;
+            texts = null;
+        }
+
+        // Trie saved by write, read in place from the buffer
+        Packed(ByteBuffer file) throws IOException {
+            if (file.capacity() < HEADER || file.getInt(0) != MAGIC) {
+                throw new IOException("Not a QuerySidekick index");
+            }
+            if (file.getInt(4) != VERSION) {
+                throw new IOException("Unsupported QuerySidekick index version " + file.getInt(4));
+            }
+            nodes = file.getInt(8);
+            queryCount = file.getInt(12);
+            int textBytes = file.getInt(16);
+            int tailChars = file.getInt(20);
+            k = file.getInt(24);
+            if (k < 1) {
+                throw new IOException("Corrupt QuerySidekick index, k = " + k);
+            }
+            int at = HEADER;
+            firstKid = slice(file, at, (nodes + 1) * 4).asIntBuffer();
+            at += (nodes + 1) * 4;
+            top = slice(file, at, nodes * k * 4).asIntBuffer();
+            at += nodes * k * 4;
+            count = slice(file, at, queryCount * 4).asIntBuffer();
+            at += queryCount * 4;
+            textStart = slice(file, at, (queryCount + 1) * 4).asIntBuffer();
+            at += (queryCount + 1) * 4;
+            tailStart = slice(file, at, (nodes + 1) * 4).asIntBuffer();
+            at += (nodes + 1) * 4;
+            term = slice(file, at, nodes * 4).asIntBuffer();
+            at += nodes * 4;
+            label = slice(file, at, nodes * 2).asCharBuffer();
+            at += nodes * 2;
+            tails = slice(file, at, tailChars * 2).asCharBuffer();
+            at += tailChars * 2;
+            texts = slice(file, at, textBytes);
+            pool = new String[queryCount];
+            queries = null;
+            scores = null;
+        }
+
+        private static ByteBuffer slice(ByteBuffer file, int at, int length) throws IOException {
+            if (at < 0 || length < 0 || at + length > file.capacity()) {
+                throw new IOException("Truncated QuerySidekick index");
+            }
+            ByteBuffer part = file.duplicate();
+            part.position(at).limit(at + length);
+            return part.slice();
+        }
+
+        // Child of node reached by ch, -1 if there is none
+        int child(int node, char ch) {
+            int lo = firstKid.get(node);
+            int hi = firstKid.get(node + 1) - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char c = label.get(mid);
+                if (c < ch) {
+                    lo = mid + 1;
+                } else if (c > ch) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        // Chars on the edge into node after its label
+        int tailLength(int node) {
+            return tailStart.get(node + 1) - tailStart.get(node);
+        }
+
+        char tail(int node, int i) {
+            return tails.get(tailStart.get(node) + i);
+        }
+
+        // Times query was counted, as of the freeze or the save
+        int count(int query) {
+            return queries != null ? queries.counts[query] : count.get(query);
+        }
+
+        // Score query had when frozen, a mapped file has none so its count stands in
+        long score(int query) {
+            return scores != null ? scores[query] : count(query);
+        }
+
+        // Query id ranked i-th at node, -1 past the end of its list
+        int top(int node, int i) {
+            return i < k ? top.get(node * k + i) : -1;
+        }
+
+        String text(int query) {
+            if (queries != null) {
+                return queries.text(query);
+            }
+            String text = pool[query];
+            if (text == null) {            // Racing sessions may both decode it, they get equal strings either way
+                ByteBuffer bytes = texts.duplicate();
+                bytes.position(textStart.get(query)).limit(textStart.get(query + 1));
+                text = StandardCharsets.UTF_8.decode(bytes).toString();
+                pool[query] = text;
+            }
+            return text;
+        }
+
+        // Rebuilds the node graph into the engine's queries and returns its root. ids maps the ids of a mapped
+        // trie to the engine's, a frozen one already uses them. The lists get their scores from score
+        Node unpack(Queries into, int[] ids, IntToLongFunction score, int epoch) {
+            Node[] all = new Node[nodes];
+            int[] same = new int[nodes];         // A child whose list node i can share, -1 if none
+            all[0] = new Node('\0');
+            for (int i = 0; i < nodes; i++) {
+                Node node = all[i];
+                if (term.get(i) >= 0) {
+                    node.term = ids == null ? term.get(i) : ids[term.get(i)];
+                }
+                for (int kid = firstKid.get(i); kid < firstKid.get(i + 1); kid++) {
+                    char[] tail = Node.NO_TAIL;
+                    if (tailLength(kid) > 0) {
+                        tail = new char[tailLength(kid)];
+                        tails.duplicate().position(tailStart.get(kid)).get(tail);
+                    }
+                    all[kid] = node.add(new Node(label.get(kid), tail));
+                }
+                int size = 0;
+                while (top(i, size) >= 0) {
+                    size++;
+                }
+                same[i] = -1;
+                for (int kid = firstKid.get(i); kid < firstKid.get(i + 1) && size > 0; kid++) {
+                    if (top(kid, 0) == top(i, 0) && sameTop(i, kid)) {
+                        same[i] = kid;
+                        break;
+                    }
+                }
+                if (size > 0 && same[i] < 0) {
+                    int[] ranked = new int[size];
+                    long[] scores = new long[size];
+                    for (int j = 0; j < size; j++) {
+                        ranked[j] = ids == null ? top(i, j) : ids[top(i, j)];
+                        scores[j] = score.applyAsLong(ranked[j]);
+                    }
+                    node.top = new Top(ranked, scores, epoch);
+                }
+            }
+            for (int i = nodes - 1; i >= 0; i--) {        // Children first, so what they share is already set
+                if (same[i] >= 0) {
+                    all[i].top = all[same[i]].top;
+                }
+            }
+            return all[0];
+        }
+
+        private boolean sameTop(int node, int other) {
+            for (int i = 0; i < k; i++) {
+                if (top(node, i) != top(other, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Puts the counts of a mapped trie into the engine's queries and returns the id each query got there
+        int[] countsTo(Queries into) {
+            int[] ids = new int[queryCount];
+            for (int i = 0; i < queryCount; i++) {
+                ids[i] = into.add(text(i), count.get(i));
+            }
+            return ids;
+        }
+
+        // Saves this trie so it can be mapped back in, with the count of every query, ranked or not
+        void write(FileChannel out) throws IOException {
+            byte[][] utf8 = new byte[queryCount][];
+            long textBytes = 0;
+            for (int i = 0; i < queryCount; i++) {
+                utf8[i] = text(i).getBytes(StandardCharsets.UTF_8);
+                textBytes += utf8[i].length;
+            }
+            int tailChars = tailStart.get(nodes);
+            long size = HEADER + (nodes + 1) * 8L + nodes * 4L * (k + 1) + queryCount * 8L + 4 + nodes * 2L + tailChars * 2L + textBytes;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Index too big to map, " + size + " bytes");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            Writer writer = new Writer(out, buffer);
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+            writer.putInt(nodes);
+            writer.putInt(queryCount);
+            writer.putInt((int) textBytes);
+            writer.putInt(tailChars);
+            writer.putInt(k);
+            for (int i = 0; i <= nodes; i++) {
+                writer.putInt(firstKid.get(i));
+            }
+            for (int i = 0; i < nodes * k; i++) {
+                writer.putInt(top.get(i));
+            }
+            for (int i = 0; i < queryCount; i++) {
+                writer.putInt(queries != null ? queries.counts[i] : count.get(i));
+            }
+            int start = 0;
+            for (int i = 0; i < queryCount; i++) {
+                writer.putInt(start);
+                start += utf8[i].length;
+            }
+            writer.putInt(start);
+            for (int i = 0; i <= nodes; i++) {
+                writer.putInt(tailStart.get(i));
+            }
+            for (int i = 0; i < nodes; i++) {
+                writer.putInt(term.get(i));
+            }
+            for (int i = 0; i < nodes; i++) {
+                writer.putChar(label.get(i));
+            }
+            for (int i = 0; i < tailChars; i++) {
+                writer.putChar(tails.get(i));
+            }
+            for (byte[] text : utf8) {
+                writer.put(text);
+            }
+            writer.flush();
+        }
+
+        // Buffered writes to a channel
+        private static class Writer {
+            final FileChannel out;
+            final ByteBuffer buffer;
+
+            Writer(FileChannel out, ByteBuffer buffer) {
+                this.out = out;
+                this.buffer = buffer;
+            }
+
+            void putInt(int value) throws IOException {
+                room(4);
+                buffer.putInt(value);
+            }
+
+            void putChar(char value) throws IOException {
+                room(2);
+                buffer.putChar(value);
+            }
+
+            void put(byte[] bytes) throws IOException {
+                for (int at = 0; at < bytes.length; ) {
+                    room(1);
+                    int n = Math.min(buffer.remaining(), bytes.length - at);
+                    buffer.put(bytes, at, n);
+                    at += n;
+                }
+            }
+
+            void flush() throws IOException {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+
+            private void room(int bytes) throws IOException {
+                if (buffer.remaining() < bytes) {
+                    flush();
+                }
+            }
+        }
+    }
+
+    private static final long MIN_CHUNK = 1 << 16;       // Smallest piece of the log worth its own thread
+    private static final long WINDOW = 1 << 28;          // How much of the log is mapped at a time
+    // Turkish, Azeri and Lithuanian lowercase some ASCII letters differently, those locales skip the ASCII shortcut
+    private static final boolean ASCII_LOWERCASE = !Arrays.asList("tr", "az", "lt").contains(Locale.getDefault().getLanguage());
+
+    private final Fixer fixer = new Fixer();
+    private final int k;                 // How many guesses each prefix keeps
+    private final boolean radix;
+    // Decay: a hit at time t weighs 2^((t - epochStart) / halfLife), so newer hits count more and old weights
+    // never have to be brought down as time goes on. Every REBASE half lives the epoch moves on and weights
+    // shrink back by 2^REBASE, each one the next time it is read rather than all at once
+    private static final int REBASE = 20;
+    private final long halfLife;         // Nanos, 0 for plain counts
+    private final LongSupplier clock;
+    private long epochStart;
+    private int epoch;
+    private double factor = 1;           // Weight of a hit right now
+    private double[] weights = new double[0];
+    private int[] stamps = new int[0];   // Epoch each weight was last scaled to
+    // Every query's score is worked out once and kept until its counts change or the epoch moves on
+    private Scorer scorer = FREQUENCY;
+    private final Candidate candidate = new Candidate();
+    private long[] scores = new long[0];
+    private int[] scoredIn = new int[0];  // Epoch + 1 the score is from, 0 when it has to be worked out again
+    private int[] impressions = new int[0];   // Feedback on each query, and how much of it came with the query
+    private int[] accepted = new int[0];      // among the guesses, for scorers that go by click-through
+
+    // Sessions read these without locking, so a switch between them has to be seen right away
+    private volatile Node root = new Node('\0');
+    private volatile Packed packed;      // Set while the trie is frozen, root is dropped until feedback thaws it
+    private final Queries queries = new Queries();      // Takes the place of a freq map, counts are kept by query id
+    private boolean countsInFile;                        // Loaded trie whose counts haven't gone into queries yet
+    private final Session session;                       // The one guess and feedback go through, made once k is set
+    private Node[] path = new Node[64];                  // Nodes of the query being inserted, reused by the writer
+    private int created;                                 // Nodes descend has added
+    // Word starts: every suffix of a query that begins at one of its words after the first, followed by WORD_END
+    // and the query's id so each ends on a node of its own. Always path compressed, ranks whole queries like
+    // root does, and holds no more than wordBudget nodes. Null when off, or until a loaded trie thaws
+    private static final char WORD_END = '\0';
+    private volatile Node words;
+    private int wordBudget;
+    private int wordNodes;
+
+    public QuerySidekick() {
+        this(5, false);
     }
 
-    private Node root = new Node();
-    private HashMap<String, Integer> freq = new HashMap<>();
-    private Node currentNode = root;
-    private String currentPrefix = "";
+    public QuerySidekick(boolean radix) {
+        this(5, radix);
+    }
+
+    // k is how many guesses every prefix keeps and guess returns, each node's list is sized to it. radix
+    // collapses every run of nodes with one child and no query ending there into a single node, for logs
+    // full of long queries that share little. Guesses come out the same either way
+    public QuerySidekick(int k, boolean radix) {
+        this(k, radix, 0, TimeUnit.NANOSECONDS);
+    }
+
+    // Same, with every hit on a query counting half as much once halfLife has gone by. The whole old
+    // query log counts as happening when it is processed, and a saved index keeps counts but not their ages
+    public QuerySidekick(int k, boolean radix, long halfLife, TimeUnit unit) {
+        this(k, radix, unit.toNanos(halfLife), System::nanoTime);
+    }
+
+    QuerySidekick(int k, boolean radix, long halfLife, LongSupplier clock) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1, got " + k);
+        }
+        if (halfLife < 0) {
+            throw new IllegalArgumentException("halfLife can't be negative, got " + halfLife);
+        }
+        this.k = k;
+        this.radix = radix;
+        this.halfLife = halfLife;
+        this.clock = clock;
+        epochStart = clock.getAsLong();
+        session = new Session(0);
+    }
 
     // Make all my queries look the same (lowercase, equal spaces, trimmed)
     private String fixQueryString(String s) {
-        s = s.toLowerCase().trim();
-        return s.replaceAll("\\s+", " ");
+        return fixer.fix(s);
     }
 
     // Takes in each line of the file, fixes str, updates freq of word, inserts to trie
     public void processOldQueries(String filename) throws IOException {
-      BufferedReader br = new BufferedReader(new FileReader(filename));
-      String line;
-
-      while ((line = br.readLine()) != null) {
-        String query = fixQueryString(line);
-        if (query.length() == 0) {
-          continue;
-        }
-        freq.put(query, freq.getOrDefault(query,0) + 1);
-      }
-      br.close();
-      
-      ArrayList<String> keys = new ArrayList<>(freq.keySet());
-      for (String key : keys) {
-        insert(key);
-      }
-    }
-
-    // Insert query in the trie
-    private void insert(String query) {
-        Node node = root;
-        for (int i = 0; i < query.length(); i++) {
-            char ch = query.charAt(i);
-        if (!node.next.containsKey(ch)) {
-            node.next.put(ch, new Node());
+        processOldQueries(filename, 1);
+    }
+
+    // Same as processOldQueries, but the file is cut into line aligned chunks that are read, fixed and
+    // counted on separate threads with their own maps, the counts are added up before the trie is built
+    public synchronized void processOldQueries(String filename, int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1, got " + threads);
+        }
+        ArrayList<Queries> chunks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename))) {
+            long length = channel.size();
+            int n = (int) Math.max(1, Math.min(threads, length / MIN_CHUNK));
+            ExecutorService workers = Executors.newFixedThreadPool(n);
+            try {
+                ArrayList<Future<Queries>> counts = new ArrayList<>();
+                for (int i = 0; i < n; i++) {
+                    long from = length * i / n;
+                    long to = length * (i + 1) / n;
+                    counts.add(workers.submit(() -> countChunk(channel, from, to)));
+                }
+                for (Future<Queries> count : counts) {
+                    chunks.add(count.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading " + filename);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                workers.shutdownNow();
+            }
+        }
+
+        // Nothing goes into the engine until every chunk is counted, a file that fails halfway leaves it as it was
+        restoreCounts();
+        tick();
+        for (Queries chunk : chunks) {
+            for (int id = 0; id < chunk.size; id++) {
+                hit(queries.add(chunk.text(id), chunk.counts[id]), chunk.counts[id]);
+            }
+        }
+        root = build();          // Before packed goes, so a session never finds neither
+        words = buildWords();
+        packed = null;
+        freeze();
+    }
+
+    // Counts the lines that start inside [from, to), scanning the mapped file bytes directly. A line running
+    // over the end is finished here and skipped by the next chunk, so every line is counted exactly once.
+    // ASCII lines are lowercased into a reused buffer and counted without ever becoming a String, anything
+    // else is read again, decoded like FileReader would and fixed the normal way
+    private Queries countChunk(FileChannel channel, long from, long to) throws IOException {
+        Queries counts = new Queries();
+        Fixer line = new Fixer();
+        long size = channel.size();
+        boolean ascii = ASCII_LOWERCASE;
+        boolean skipping = from > 0;         // Start one byte early, if that byte ends a line ours starts right at from
+        long pos = skipping ? from - 1 : from;
+        long lineStart = pos;
+
+        reading:
+        while (pos < size) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos));
+            int limit = window.limit();
+            for (int i = 0; i < limit; i++, pos++) {
+                byte b = window.get(i);
+                boolean end = b == '\n' || b == '\r';      // Same line breaks as readLine, the empty line in \r\n is ignored anyway
+                if (skipping) {
+                    skipping = !end;
+                    lineStart = pos + 1;
+                } else if (end) {
+                    if (ascii) {
+                        counts.add(line.chars, line.kept, 1);
+                    } else {
+                        countDecoded(counts, line, channel, lineStart, pos);
+                    }
+                    line.reset();
+                    ascii = ASCII_LOWERCASE;
+                    lineStart = pos + 1;
+                } else if (pos == lineStart && pos >= to) {      // Next line belongs to the next chunk
+                    break reading;
+                } else if (b < 0) {           // Not ASCII in any charset FileReader could be using here
+                    ascii = false;
+                } else if (ascii) {
+                    line.append((char) (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b));
+                }
+            }
+        }
+        if (!skipping && pos > lineStart) {
+            if (ascii) {
+                counts.add(line.chars, line.kept, 1);
+            } else {
+                countDecoded(counts, line, channel, lineStart, pos);
+            }
+        }
+        return counts;
+    }
+
+    // Slow path for one line of the file that isn't plain ASCII
+    private static void countDecoded(Queries counts, Fixer fixer, FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) (to - from));
+        while (bytes.hasRemaining() && channel.read(bytes, from + bytes.position()) > 0) {
         }
-        node = node.next.get(ch);
-            updateTop(node, query);
+        String query = fixer.fix(new String(bytes.array(), 0, bytes.position(), Charset.defaultCharset()));
+        if (query.length() > 0) {
+            counts.add(query, 1);
         }
     }
 
-    // Top 5 suggestions
-    private void updateTop(Node node, String query) {
-        if (!node.top.contains(query)) {
-            node.top.add(query);
+    // Bulk build, lays out every query first and then fills the tops once from the bottom up,
+    // each node merging its children's already finished lists instead of re-ranking per query
+    private Node build() {
+        Node fresh = new Node('\0');
+        for (int id = 0; id < queries.size; id++) {
+            if (queries.counts[id] == 0) {           // Left over from before a load
+                continue;
+            }
+            int n = descend(fresh, queries.text(id), radix);
+            (n == 0 ? fresh : path[n - 1]).term = id;
         }
+        return rankAll(fresh);
+    }
 
-        // Sort by freq and length, high freq is more important, if they are equal then shorter query is picked 
-        for (int i = 0; i < node.top.size(); i++) {            //This is probably slower
-            for (int j = i + 1; j < node.top.size(); j++) {
-                String a = node.top.get(i);
-                String b = node.top.get(j);
-                int scoreA = freq.get(a) * 1000 - a.length();
-                int scoreB = freq.get(b) * 1000 - b.length();
-                if (scoreB > scoreA) {
-                    node.top.set(i, b);
-                    node.top.set(j, a);
+    // Works out every list under fresh from the queries ending at each node, children first
+    private Node rankAll(Node fresh) {
+        ArrayList<Node> order = new ArrayList<>();       // Breadth first, so walking it backwards sees children before parents
+        order.add(fresh);
+        for (int i = 0; i < order.size(); i++) {
+            for (Node kid : order.get(i).kids) {
+                if (kid != null) {
+                    order.add(kid);
+                }
+            }
+        }
+        for (int i = order.size() - 1; i > 0; i--) {
+            Node node = order.get(i);
+            Top best = node.term < 0 ? Top.EMPTY : new Top(new int[] {node.term}, new long[] {score(node.term)}, epoch);
+            for (Node kid : node.kids) {
+                if (kid != null) {
+                    best = Top.merge(best, kid.top, k);
                 }
             }
+            node.top = best;
         }
+        return fresh;
+    }
 
-        while (node.top.size() > 5) {
-            node.top.remove(node.top.size() - 1);
+    private long score(int query) {
+        if (query >= scores.length) {
+            grow();
+        }
+        if (scoredIn[query] != epoch + 1) {
+            candidate.id = query;
+            scores[query] = scorer.score(candidate);
+            scoredIn[query] = epoch + 1;
+        }
+        return scores[query];
+    }
+
+    // Per query arrays catch up with the ids handed out so far
+    private void grow() {
+        int length = queries.counts.length;
+        scores = Arrays.copyOf(scores, length);
+        scoredIn = Arrays.copyOf(scoredIn, length);
+        impressions = Arrays.copyOf(impressions, length);
+        accepted = Arrays.copyOf(accepted, length);
+        if (halfLife > 0) {
+            weights = Arrays.copyOf(weights, length);
+            stamps = Arrays.copyOf(stamps, length);
+        }
+    }
+
+    // Moves the epoch on once its hits would weigh more than 2^REBASE, and works out what one weighs now
+    private void tick() {
+        if (halfLife == 0) {
+            return;
+        }
+        long elapsed = clock.getAsLong() - epochStart;
+        if (elapsed >= REBASE * halfLife) {
+            long epochs = elapsed / (REBASE * halfLife);
+            epoch += (int) epochs;
+            epochStart += epochs * REBASE * halfLife;
+            elapsed -= epochs * REBASE * halfLife;
+        }
+        factor = Math.pow(2, (double) elapsed / halfLife);
+    }
+
+    // Adds n hits on query at the current time, they are already in its count
+    private void hit(int query, int n) {
+        if (query >= scores.length) {
+            grow();
+        }
+        scoredIn[query] = 0;
+        if (halfLife > 0) {
+            weights[query] = weight(query) + n * factor;
+        }
+    }
+
+    // query's weight scaled to the current epoch
+    private double weight(int query) {
+        if (query >= weights.length) {
+            return 0;
+        }
+        if (stamps[query] != epoch) {
+            long behind = (long) epoch - stamps[query];
+            weights[query] = behind * REBASE > 2000 ? 0 : Math.scalb(weights[query], (int) -behind * REBASE);
+            stamps[query] = epoch;
         }
+        return weights[query];
     }
 
-    // Top 5 guesses for the current prefix picked
+    // top ranked again with scores from this epoch
+    private Top refresh(Top top) {
+        int[] ids = top.ids.clone();
+        long[] scores = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {      // Insertion sort, the list is short and mostly still in order
+            int id = ids[i];
+            long score = score(id);
+            int j = i;
+            while (j > 0 && score > scores[j - 1]) {
+                ids[j] = ids[j - 1];
+                scores[j] = scores[j - 1];
+                j--;
+            }
+            ids[j] = id;
+            scores[j] = score;
+        }
+        return new Top(ids, scores, epoch);
+    }
+
+    // Ranks queries, the higher score goes first. It is asked once when a query's counts change and the
+    // answer is kept in the top lists, so guess never waits on it. Runs on whichever thread holds the engine lock
+    public interface Scorer {
+        long score(Candidate query);
+    }
+
+    // High freq is more important, then the shorter query. In a long so a hot query can't wrap around
+    public static final Scorer FREQUENCY = query -> (long) (query.weight() * 1000) - query.text().length();
+
+    // Frequency scaled by how often the query is picked when it comes up, counting as half until there's feedback
+    public static final Scorer CLICK_THROUGH = query ->
+            (long) (query.weight() * 1000 * (query.accepted() + 1) / (query.impressions() + 2)) - query.text().length();
+
+    // What a scorer gets to see of one query, only good for the one call
+    public final class Candidate {
+        private int id;
+
+        private Candidate() {
+        }
+
+        public String text() {
+            return queries.text(id);
+        }
+
+        // Times it was seen, in the old queries and feedback
+        public int count() {
+            return queries.counts[id];
+        }
+
+        // Same as count, less for hits that are older than a half life when decay is on
+        public double weight() {
+            return halfLife == 0 ? queries.counts[id] : QuerySidekick.this.weight(id);
+        }
+
+        // Times feedback reported it
+        public int impressions() {
+            return impressions[id];
+        }
+
+        // Times feedback reported it with isCorrect, it was among the guesses
+        public int accepted() {
+            return accepted[id];
+        }
+    }
+
+    // Ranks everything with scorer from now on. Every list is worked out again, which takes about as
+    // long as processOldQueries does
+    public synchronized void setScorer(Scorer scorer) {
+        if (scorer == null) {
+            throw new NullPointerException("scorer");
+        }
+        this.scorer = scorer;
+        Arrays.fill(scoredIn, 0);
+        restoreCounts();
+        root = build();          // Before packed goes, so a session never finds neither
+        words = buildWords();
+        packed = null;
+        freeze();
+    }
+
+    // Lets a query be guessed from the start of any of its words, not just the first: whatever room the
+    // prefix matches leave is filled with queries that have a word starting with what was typed. maxNodes
+    // caps the nodes this takes, indexing every word of every query would be a few times the main trie, so
+    // the best scored queries go in first and the rest only while there is room. 0 turns it off
+    public synchronized void setWordIndex(int maxNodes) {
+        if (maxNodes < 0) {
+            throw new IllegalArgumentException("maxNodes must be at least 0, got " + maxNodes);
+        }
+        wordBudget = maxNodes;
+        if (countsInFile) {          // Loaded, the counts the word trie is ranked by come in with the thaw
+            thaw();
+            freeze();
+        } else {
+            words = buildWords();
+        }
+    }
+
+    // The word trie from the counts, null when it is off
+    private Node buildWords() {
+        if (wordBudget == 0) {
+            wordNodes = 0;
+            return null;
+        }
+        Integer[] order = new Integer[queries.size];
+        int size = 0;
+        for (int id = 0; id < queries.size; id++) {
+            if (queries.counts[id] > 0) {
+                order[size++] = id;
+            }
+        }
+        Arrays.sort(order, 0, size, (a, b) -> Long.compare(score(b), score(a)));
+        Node fresh = new Node('\0');
+        created = 0;
+        fill:
+        for (int i = 0; i < size; i++) {
+            int id = order[i];
+            String text = queries.text(id);
+            for (int at = wordStart(text, 0); at >= 0; at = wordStart(text, at)) {
+                if (created + 2 > wordBudget) {         // A new key adds a leaf and at most one split
+                    break fill;
+                }
+                path[descend(fresh, wordKey(text, at, id), true) - 1].term = id;
+            }
+        }
+        wordNodes = created;
+        return rankAll(fresh);
+    }
+
+    // Ranks the query's word starts in the word trie again. One that isn't in yet only goes in if the
+    // budget has room for it
+    private void insertWords(int id, long was) {
+        String text = queries.text(id);
+        for (int at = wordStart(text, 0); at >= 0; at = wordStart(text, at)) {
+            String key = wordKey(text, at, id);
+            if (wordNodes + 2 > wordBudget && !contains(words, key)) {
+                continue;
+            }
+            created = 0;
+            insert(words, key, id, was, true);
+            wordNodes += created;
+        }
+    }
+
+    // Where the next word after from starts, -1 past the last
+    private static int wordStart(String text, int from) {
+        int space = text.indexOf(' ', from);
+        return space >= 0 && space + 1 < text.length() ? space + 1 : -1;
+    }
+
+    private static String wordKey(String text, int at, int id) {
+        return text.substring(at) + WORD_END + (char) (id >>> 16) + (char) id;
+    }
+
+    // Whether key ends on a node under node, nothing is added
+    private static boolean contains(Node node, String key) {
+        for (int i = 0; i < key.length(); ) {
+            node = node.child(key.charAt(i));
+            if (node == null || node.tail.length > key.length() - i - 1) {
+                return false;
+            }
+            for (char c : node.tail) {
+                if (c != key.charAt(++i)) {
+                    return false;
+                }
+            }
+            i++;
+        }
+        return true;
+    }
+
+    // Packs the trie into flat arrays, only guess reads the trie until the next feedback
+    private void freeze() {
+        packed = new Packed(root, queries, k, this::score);  // Before root goes, so a session never finds neither
+        root = null;
+    }
+
+    // Back to the node graph so the trie can change again. Sessions in the middle of a query finish it
+    // on the arrays they started with
+    private void thaw() {
+        if (packed == null) {
+            return;
+        }
+        // The packed lists were ordered when they were frozen, with decay on that may have been another epoch
+        boolean loaded = countsInFile;
+        root = packed.unpack(queries, restoreCounts(), this::score, halfLife == 0 ? epoch : -1);
+        packed = null;
+        if (loaded) {
+            words = buildWords();
+        }
+    }
+
+    // A loaded trie brings its counts along in the file, they go into queries before anything is counted on
+    // top. Returns where each of the file's ids went, null when there was nothing to bring in
+    private int[] restoreCounts() {
+        if (!countsInFile) {
+            return null;
+        }
+        countsInFile = false;
+        tick();
+        int[] ids = packed.countsTo(queries);
+        for (int id : ids) {
+            hit(id, queries.counts[id]);
+        }
+        return ids;
+    }
+
+    // Writes the trie, the top k lists and every query's freq to filename, so load can start from it later.
+    // Impressions and acceptances aren't kept, a loaded index starts them from nothing
+    public synchronized void save(String filename) throws IOException {
+        Packed trie = packed != null ? packed : new Packed(root, queries, k, null);
+        // The trie may be mapped from filename itself, and sessions may still be reading it. Writing it over in
+        // place would cut the mapping short under them, so it goes to a file next to it that then replaces it
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + "." + System.nanoTime() + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                trie.write(out);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Replaces everything with a trie written by save. The file is mapped rather than read, so this takes
+    // about as long as opening it and guess reads the mapped bytes directly until the first feedback
+    public synchronized void load(String filename) throws IOException {
+        Packed trie;
+        try (FileChannel in = FileChannel.open(Paths.get(filename))) {
+            if (in.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a QuerySidekick index, too big: " + filename);
+            }
+            trie = new Packed(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()));
+        }
+        if (trie.k != k) {
+            throw new IOException("Index keeps " + trie.k + " guesses per prefix, this engine " + k + ": " + filename);
+        }
+        Arrays.fill(queries.counts, 0, queries.size, 0);     // Ids stay, sessions on the old trie may still read them
+        Arrays.fill(weights, 0);
+        Arrays.fill(scoredIn, 0);
+        Arrays.fill(impressions, 0);
+        Arrays.fill(accepted, 0);
+        countsInFile = true;
+        words = null;            // Its ids are the engine's, the loaded trie's aren't. Built again on the thaw
+        packed = trie;
+        root = null;
+    }
+
+    // Insert query in the trie, then rank its new score from the last node up. A node ranks everything
+    // its children do, so the kth best score never drops going up, and once the query can't get into a
+    // top k it isn't in any of the ones above either: the walk stops there
+    private void insert(Node root, String key, int id, long was, boolean compress) {
+        int n = descend(root, key, compress);
+        (n == 0 ? root : path[n - 1]).term = id;
+
+        long score = score(id);
+        if (score < was) {
+            demote(id, n);
+            return;
+        }
+        Top before = null;            // The last list ranked and what it became. Up an unbranched chain the nodes
+        Top after = null;             // share one list, ranking it again would give the same copy every time
+        for (int i = n - 1; i >= 0; i--) {
+            Top top = path[i].top;
+            if (top == before) {
+                path[i].top = after;
+                continue;
+            }
+            before = top;
+            if (top.epoch != epoch && top.ids.length > 0) {
+                top = refresh(top);
+            }
+            int at = top.indexOf(id);
+            if (at < 0 && top.ids.length == k && (score <= top.scores[k - 1] || score <= score(top.ids[k - 1]))) {
+                path[i].top = top;
+                break;
+            }
+            after = rank(top, at, id, score);      // Same list back when it was already first
+            path[i].top = after;
+        }
+    }
+
+    // A score can go down too, with a scorer that minds more than counts. Others may pass the query then, and
+    // out of a full list something further down comes back in, so each list on the path is worked out again
+    // from the node's own query and its children's lists. Up to the first one the query is in neither way
+    private void demote(int id, int n) {
+        for (int i = n - 1; i >= 0; i--) {
+            Node node = path[i];
+            Top old = node.top;
+            node.top = collect(node);
+            if (old.indexOf(id) < 0 && node.top.indexOf(id) < 0) {
+                break;
+            }
+        }
+    }
+
+    // Top k of node from scratch
+    private Top collect(Node node) {
+        int[] ids = new int[k];
+        long[] scores = new long[k];
+        int size = node.term < 0 ? 0 : offer(ids, scores, 0, node.term);
+        for (Node kid : node.kids) {
+            if (kid != null) {
+                for (int query : kid.top.ids) {
+                    size = offer(ids, scores, size, query);
+                }
+            }
+        }
+        return new Top(Arrays.copyOf(ids, size), Arrays.copyOf(scores, size), epoch);
+    }
+
+    // Puts query into the size best so far if it makes it and isn't in yet, returns the new size
+    private int offer(int[] ids, long[] scores, int size, int query) {
+        long score = score(query);
+        if (size == k && score <= scores[k - 1] || Top.taken(ids, size, query)) {
+            return size;
+        }
+        int at = size < k ? size++ : k - 1;
+        while (at > 0 && score > scores[at - 1]) {
+            ids[at] = ids[at - 1];
+            scores[at] = scores[at - 1];
+            at--;
+        }
+        ids[at] = query;
+        scores[at] = score;
+        return size;
+    }
+
+    // Walks query down from root adding whatever is missing, the nodes it passes are left in path and
+    // their count returned, the nodes added go onto created. Compressed the missing part is one new node,
+    // and an edge the query ends or turns off in the middle of is split first so it ends on a node
+    private int descend(Node root, String query, boolean compress) {
+        if (path.length < query.length()) {
+            path = new Node[Math.max(query.length(), path.length * 2)];
+        }
+        Node node = root;
+        int n = 0;
+        for (int i = 0; i < query.length(); ) {
+            Node kid = node.child(query.charAt(i));
+            if (kid == null && compress) {
+                kid = node.add(new Node(query.charAt(i), query.substring(i + 1).toCharArray()));
+                created++;
+                i = query.length();
+            } else if (kid == null) {
+                kid = node.add(new Node(query.charAt(i)));
+                created++;
+                i++;
+            } else {
+                int same = 0;
+                while (same < kid.tail.length && i + 1 + same < query.length() && kid.tail[same] == query.charAt(i + 1 + same)) {
+                    same++;
+                }
+                if (same < kid.tail.length) {       // Only a radix trie, or one loaded from it, has tails
+                    kid = node.split(kid, same);
+                    created++;
+                }
+                i += 1 + same;
+            }
+            path[n++] = kid;
+            node = kid;
+        }
+        return n;
+    }
+
+    // top with query moved up to its place for its new score, at is where it is now, -1 if it just got in.
+    // Cached scores below the new one are checked against the counts before the query passes them
+    private Top rank(Top top, int at, int query, long score) {
+        int[] ids = top.ids;
+        long[] scores = top.scores;
+        int from = at >= 0 ? at : Math.min(ids.length, k - 1);      // Its own slot, a new one, or the one it pushes out
+        int to = from;
+        while (to > 0 && score > scores[to - 1] && score > score(ids[to - 1])) {    // Ties keep the older entry in front
+            to--;
+        }
+        if (to == at) {
+            return top;
+        }
+        int length = at < 0 && ids.length < k ? ids.length + 1 : ids.length;
+        int[] newIds = Arrays.copyOf(ids, length);
+        long[] newScores = Arrays.copyOf(scores, length);
+        System.arraycopy(ids, to, newIds, to + 1, from - to);
+        System.arraycopy(scores, to, newScores, to + 1, from - to);
+        newIds[to] = query;
+        newScores[to] = score;
+        return new Top(newIds, newScores, epoch);
+    }
+
+    // Top k guesses for the current prefix picked
     public String[] guess(char ch, int index) {
-        if (index == 0) {      // New query, move current node to child of root matching the char
-            currentPrefix = Character.toString(ch);
-            currentNode = root.next.get(ch);
-        } else {              // Add char to prefix, go further into trie
-            currentPrefix += ch;
-            if (currentNode != null) {
-              currentNode = currentNode.next.get(ch);
+        return session.guess(ch, index, k);
+    }
+
+    // Only the best limit of them, limit can't be more than k
+    public String[] guess(char ch, int index, int limit) {
+        return session.guess(ch, index, limit);
+    }
+
+    // A new cursor for one more user typing against the same trie
+    public Session newSession() {
+        return new Session(0);
+    }
+
+    // Same, but typos are forgiven: queries up to maxEdits chars inserted, dropped or changed away from what
+    // was typed fill whatever room the exact matches leave
+    public Session newSession(int maxEdits) {
+        if (maxEdits < 0 || maxEdits > 2) {
+            throw new IllegalArgumentException("maxEdits must be between 0 and 2, got " + maxEdits);
+        }
+        return new Session(maxEdits);
+    }
+
+    // Where one user is in the trie. The trie is shared and only read here, so sessions on any number of
+    // threads can guess at the same time, each one just needs to be used by one thread at a time
+    public class Session {
+        private Packed currentTrie;          // Frozen trie this query is being walked on, null when on nodes
+        // Where each prefix of the query ends, [0] is the root. Backspace just steps back one, an edit goes back
+        // to where the text changed and walks on from there. A prefix can end partway along a radix edge,
+        // offs says how much of the node's tail it has gone through, its guesses are the node's all the same
+        private Node[] nodes = new Node[32];
+        private int[] ids = new int[32];
+        private int[] offs = new int[32];
+        private Node[] wordNodes = new Node[32];     // The same down the word trie, null once nothing matches
+        private int[] wordOffs = new int[32];
+        private final StringBuilder currentPrefix = new StringBuilder();
+        private final Suggestions suggestions = new Suggestions(queries, k);
+        private final Fuzzy fuzzy;           // Null unless typos are forgiven
+
+        private Session(int maxEdits) {
+            fuzzy = maxEdits > 0 ? new Fuzzy(maxEdits) : null;
+        }
+
+        // Top k guesses for the current prefix picked
+        public String[] guess(char ch, int index) {
+            return guess(ch, index, k);
+        }
+
+        // Best limit guesses, only those are copied out
+        public String[] guess(char ch, int index, int limit) {
+            if (limit < 0 || limit > k) {
+                throw new IllegalArgumentException("limit must be between 0 and " + k + ", got " + limit);
+            }
+            if (index == 0) {      // New query, move current node to child of root matching the char
+                reset();
+            }
+            Suggestions picked = type(ch);
+            String[] result = new String[limit];
+            for (int i = 0; i < Math.min(limit, picked.size()); i++) {
+                result[i] = picked.get(i);
             }
+            return result;        // Result holds my top guesses, empty when no query in trie has this prefix
         }
 
-        String[] result = new String[5];
-        if (currentNode == null) {      // No query in trie with matching prefix
-          return result;
+        // Starts a new query at the root of whatever trie is current
+        public void reset() {
+            currentPrefix.setLength(0);
+            currentTrie = packed;
+            nodes[0] = currentTrie == null ? root : null;
+            if (currentTrie == null && nodes[0] == null) {       // Got frozen right after the first look
+                currentTrie = packed;
+            }
+            ids[0] = 0;
+            offs[0] = 0;
+            // After packed, a trie loaded since has no word trie yet. Its ids aren't the engine's either
+            wordNodes[0] = currentTrie == null || currentTrie.queries != null ? words : null;
+            wordOffs[0] = 0;
+            if (fuzzy != null) {
+                fuzzy.start();
+            }
+            show(0);
         }
 
-        for (int i = 0; i < currentNode.top.size() && i < 5; i++) {
-            result[i] = currentNode.top.get(i);
+        // Next char of the query. The suggestions that come back are the session's own and change with the
+        // next keystroke, nothing is allocated or copied per char
+        public Suggestions type(char ch) {
+            int depth = currentPrefix.length();
+            if (depth + 1 == ids.length) {
+                nodes = Arrays.copyOf(nodes, ids.length * 2);
+                ids = Arrays.copyOf(ids, ids.length * 2);
+                offs = Arrays.copyOf(offs, ids.length);
+                wordNodes = Arrays.copyOf(wordNodes, ids.length);
+                wordOffs = Arrays.copyOf(wordOffs, ids.length);
+            }
+            int off = offs[depth];
+            if (currentTrie != null) {
+                int id = ids[depth];
+                if (id >= 0 && off < currentTrie.tailLength(id)) {        // Still on the edge
+                    ids[depth + 1] = currentTrie.tail(id, off) == ch ? id : -1;
+                    offs[depth + 1] = off + 1;
+                } else {
+                    ids[depth + 1] = id >= 0 ? currentTrie.child(id, ch) : -1;
+                    offs[depth + 1] = 0;
+                }
+            } else {
+                Node node = nodes[depth];
+                if (node != null && off < node.tail.length) {
+                    nodes[depth + 1] = node.tail[off] == ch ? node : null;
+                    offs[depth + 1] = off + 1;
+                } else {
+                    nodes[depth + 1] = node != null ? node.child(ch) : null;
+                    offs[depth + 1] = 0;
+                }
+            }
+            Node word = wordNodes[depth];
+            if (word != null && wordOffs[depth] < word.tail.length) {
+                wordNodes[depth + 1] = word.tail[wordOffs[depth]] == ch ? word : null;
+                wordOffs[depth + 1] = wordOffs[depth] + 1;
+            } else {
+                wordNodes[depth + 1] = word != null ? word.child(ch) : null;
+                wordOffs[depth + 1] = 0;
+            }
+            currentPrefix.append(ch);
+            if (fuzzy != null) {
+                fuzzy.type(ch);
+            }
+            return show(depth + 1);
+        }
+
+        // Drops the last char typed
+        public Suggestions backspace() {
+            int depth = currentPrefix.length();
+            if (depth > 0) {
+                currentPrefix.setLength(--depth);
+                nodes[depth + 1] = null;
+                wordNodes[depth + 1] = null;
+                if (fuzzy != null) {
+                    fuzzy.replay();
+                }
+            }
+            return show(depth);
+        }
+
+        // Makes text the query, only walking again from the first char that differs from what was there
+        public Suggestions retype(CharSequence text) {
+            int same = 0;
+            while (same < text.length() && same < currentPrefix.length() && text.charAt(same) == currentPrefix.charAt(same)) {
+                same++;
+            }
+            if (same < currentPrefix.length()) {
+                Arrays.fill(nodes, same + 1, currentPrefix.length() + 1, null);
+                Arrays.fill(wordNodes, same + 1, currentPrefix.length() + 1, null);
+                currentPrefix.setLength(same);
+                if (fuzzy != null) {
+                    fuzzy.replay();
+                }
+            }
+            for (int i = same; i < text.length(); i++) {
+                type(text.charAt(i));
+            }
+            return show(currentPrefix.length());
         }
 
-        return result;        // Result holds my top 5 guesses
+        // What has been typed since the last reset
+        public CharSequence prefix() {
+            return currentPrefix;
+        }
+
+        private Suggestions show(int depth) {
+            if (fuzzy != null) {
+                fuzzy.show();
+            } else if (currentTrie != null) {
+                suggestions.show(null, currentTrie, ids[depth]);
+            } else {
+                Node node = nodes[depth];
+                suggestions.show(node == null ? null : node.top, null, -1);      // One read, feedback may swap in a newer list meanwhile
+            }
+            Node word = wordNodes[depth];
+            if (word != null && depth > 0 && suggestions.size() < k) {
+                suggestions.fill(word.top);
+            }
+            return suggestions;
+        }
+
+        // Typo tolerant cursor, a Levenshtein automaton run over the trie. It keeps the places in the trie the
+        // text typed so far could have meant with at most maxEdits chars inserted, dropped or changed. Only the
+        // best MAX_STATES are kept, fewest edits first and then the best query under them, so a keystroke never
+        // costs more than MAX_STATES times the children of a node
+        private class Fuzzy {
+            static final int MAX_STATES = 32;
+
+            private final int maxEdits;
+            private States current = new States();
+            private States next = new States();
+            private final Top[] tops = new Top[MAX_STATES];      // Lists read once per show, feedback may swap them
+            private final int[] taken = new int[MAX_STATES];     // How much of each list is in the suggestions
+            private final int[] order = new int[MAX_STATES];     // States by edits, then key
+
+            Fuzzy(int maxEdits) {
+                this.maxEdits = maxEdits;
+            }
+
+            // Nothing typed, the root with no edits
+            void start() {
+                current.size = 0;
+                current.offer(nodes[0], currentTrie != null ? 0 : -1, 0, 0);
+            }
+
+            // Back to the root and through the prefix again, after backspace or an edit
+            void replay() {
+                start();
+                for (int i = 0; i < currentPrefix.length(); i++) {
+                    type(currentPrefix.charAt(i));
+                }
+            }
+
+            void type(char ch) {
+                // The text may skip chars the query has, every state also goes on a char further for an edit.
+                // States added here get their turn too, so that can happen more than once
+                for (int i = 0; i < current.size; i++) {
+                    if (current.edits[i] < maxEdits) {
+                        follow(current, i, current, ch, false);
+                    }
+                }
+                next.size = 0;
+                for (int i = 0; i < current.size; i++) {
+                    if (current.edits[i] < maxEdits) {        // ch is one too many
+                        next.offer(current.nodes[i], current.ids[i], current.offs[i], current.edits[i] + 1);
+                    }
+                    follow(current, i, next, ch, true);       // ch matches, or was typed in place of another
+                }
+                States done = current;
+                current = next;
+                next = done;
+            }
+
+            // Moves state i of from one char down every way it can go, into to. Taking ch costs nothing when it
+            // is the char there and an edit otherwise, not taking a char always costs one
+            private void follow(States from, int i, States to, char ch, boolean taking) {
+                int edits = from.edits[i];
+                int off = from.offs[i];
+                Node node = from.nodes[i];
+                if (node != null) {
+                    if (off < node.tail.length) {
+                        offer(to, node, -1, off + 1, node.tail[off], ch, taking, edits);
+                    } else {
+                        for (Node kid : node.kids) {
+                            if (kid != null) {
+                                offer(to, kid, -1, 0, kid.ch, ch, taking, edits);
+                            }
+                        }
+                    }
+                } else if (currentTrie != null) {
+                    int id = from.ids[i];
+                    if (off < currentTrie.tailLength(id)) {
+                        offer(to, null, id, off + 1, currentTrie.tail(id, off), ch, taking, edits);
+                    } else {
+                        for (int kid = currentTrie.firstKid.get(id); kid < currentTrie.firstKid.get(id + 1); kid++) {
+                            offer(to, null, kid, 0, currentTrie.label.get(kid), ch, taking, edits);
+                        }
+                    }
+                }
+            }
+
+            private void offer(States to, Node node, int id, int off, char label, char ch, boolean taking, int edits) {
+                int cost = taking && label == ch ? edits : edits + 1;
+                if (cost <= maxEdits) {
+                    to.offer(node, id, off, cost);
+                }
+            }
+
+            // Fills the suggestions, the fewest edits first. Among states with as many edits their lists are
+            // merged best first, skipping queries an earlier state already brought
+            void show() {
+                int size = current.size;
+                for (int i = 0; i < size; i++) {
+                    int j = i;
+                    while (j > 0 && current.before(i, order[j - 1])) {
+                        order[j] = order[j - 1];
+                        j--;
+                    }
+                    order[j] = i;
+                    tops[i] = current.nodes[i] != null ? current.nodes[i].top : null;
+                    taken[i] = 0;
+                }
+                suggestions.pick(currentTrie);
+                for (int from = 0; from < size && suggestions.size() < k; ) {
+                    int to = from;
+                    while (to < size && current.edits[order[to]] == current.edits[order[from]]) {
+                        to++;
+                    }
+                    while (suggestions.size() < k) {
+                        int best = -1;
+                        long bestKey = 0;
+                        for (int j = from; j < to; j++) {
+                            int state = order[j];
+                            long key = entryKey(state, taken[state]);
+                            if (key != Long.MIN_VALUE && (best < 0 || key > bestKey)) {
+                                best = state;
+                                bestKey = key;
+                            }
+                        }
+                        if (best < 0) {
+                            break;
+                        }
+                        suggestions.add(entry(best, taken[best]++));
+                    }
+                    from = to;
+                }
+                Arrays.fill(tops, 0, size, null);
+            }
+
+            // Query ranked i-th under state, and how good it is, Long.MIN_VALUE past the end of its list
+            private int entry(int state, int i) {
+                return tops[state] != null ? tops[state].ids[i] : currentTrie.top(current.ids[state], i);
+            }
+
+            private long entryKey(int state, int i) {
+                if (tops[state] != null) {
+                    return i < tops[state].ids.length ? tops[state].scores[i] : Long.MIN_VALUE;
+                }
+                int query = currentTrie.top(current.ids[state], i);
+                return query >= 0 ? currentTrie.score(query) : Long.MIN_VALUE;
+            }
+
+            // Places in the trie with the edits it took to get there. A place is a node, or a packed node id
+            // when the trie is frozen, and how far along the edge into it
+            private class States {
+                final Node[] nodes = new Node[MAX_STATES];
+                final int[] ids = new int[MAX_STATES];
+                final int[] offs = new int[MAX_STATES];
+                final int[] edits = new int[MAX_STATES];
+                final long[] keys = new long[MAX_STATES];      // Score of the best query below, to prune by
+                int size;
+
+                // Adds a place, or lowers its edits if it is there already. When full it only goes in by
+                // pushing out one that is worse
+                void offer(Node node, int id, int off, int edit) {
+                    for (int i = 0; i < size; i++) {
+                        if (nodes[i] == node && ids[i] == id && offs[i] == off) {
+                            edits[i] = Math.min(edits[i], edit);
+                            return;
+                        }
+                    }
+                    long key = key(node, id);
+                    int at = size;
+                    if (size == MAX_STATES) {
+                        at = 0;
+                        for (int i = 1; i < size; i++) {
+                            if (edits[i] > edits[at] || edits[i] == edits[at] && keys[i] < keys[at]) {
+                                at = i;
+                            }
+                        }
+                        if (edit > edits[at] || edit == edits[at] && key <= keys[at]) {
+                            return;
+                        }
+                    } else {
+                        size++;
+                    }
+                    nodes[at] = node;
+                    ids[at] = id;
+                    offs[at] = off;
+                    edits[at] = edit;
+                    keys[at] = key;
+                }
+
+                boolean before(int a, int b) {
+                    return edits[a] < edits[b] || edits[a] == edits[b] && keys[a] > keys[b];
+                }
+
+                // Cached score of the best query at a node, on a frozen trie the one it was frozen with
+                private long key(Node node, int id) {
+                    if (node != null) {
+                        Top top = node.top;
+                        return top.ids.length > 0 ? top.scores[0] : Long.MIN_VALUE;
+                    }
+                    int best = currentTrie.top(id, 0);
+                    return best >= 0 ? currentTrie.score(best) : Long.MIN_VALUE;
+                }
+            }
+        }
     }
 
-    public void feedback(boolean isCorrect, String query) {     // Check if guess is correct
+    // Read only view of a session's current guesses, best first
+    public static class Suggestions {
+        private final Queries queries;
+        private Top top;
+        private Packed trie;
+        private int id = -1;
+        private int size;
+        private final int[] picked;          // Queries put together one by one for a fuzzy session
+        private boolean picking;
+
+        private Suggestions(Queries queries, int k) {
+            this.queries = queries;
+            picked = new int[k];
+        }
+
+        private void show(Top top, Packed trie, int id) {
+            this.top = top;
+            this.trie = trie;
+            this.id = id;
+            picking = false;
+            if (top != null) {
+                size = top.ids.length;
+            } else {
+                size = 0;
+                while (id >= 0 && trie.top(id, size) >= 0) {
+                    size++;
+                }
+            }
+        }
+
+        // Starts an empty list of query ids, of trie or of the engine's queries when it is null
+        private void pick(Packed trie) {
+            this.top = null;
+            this.trie = trie;
+            picking = true;
+            size = 0;
+        }
+
+        // Tops the guesses shown up with more's queries, after them and skipping any already in. The ones
+        // shown so far are copied into picked first, more holds engine ids so this only works with a trie sharing them
+        private void fill(Top more) {
+            if (!picking) {
+                for (int i = 0; i < size; i++) {
+                    picked[i] = top != null ? top.ids[i] : trie.top(id, i);
+                }
+                top = null;
+                picking = true;
+            }
+            for (int i = 0; i < more.ids.length && size < picked.length; i++) {
+                add(more.ids[i]);
+            }
+        }
+
+        // Appends query unless it is in already
+        private void add(int query) {
+            for (int i = 0; i < size; i++) {
+                if (picked[i] == query) {
+                    return;
+                }
+            }
+            picked[size++] = query;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public String get(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("Suggestion " + i + " of " + size);
+            }
+            if (picking) {
+                return trie != null ? trie.text(picked[i]) : queries.text(picked[i]);
+            }
+            return top != null ? queries.text(top.ids[i]) : trie.text(trie.top(id, i));
+        }
+    }
+
+    // Writers take turns on the engine lock, sessions never take it and keep guessing meanwhile
+    public synchronized void feedback(boolean isCorrect, String query) {     // Check if guess is correct
         if (query == null) {
             return;
         }
         query = fixQueryString(query);
-        freq.put(query, freq.getOrDefault(query, 0) + 1);      // Increase the freq, insert to trie, so prefix nodes updates tops
-        insert(query);
+        if (query.length() == 0) {        // Only whitespace, skipped like blank lines in the log and the queue's batches
+            return;
+        }
+        thaw();
+        tick();
+        record(query, 1, isCorrect ? 1 : 0);
+    }
+
+    // n more feedback on query, accepts of it with isCorrect. Increase the freq, insert to trie, so prefix
+    // nodes updates tops
+    private void record(String query, int n, int accepts) {
+        int id = queries.add(query, 0);
+        long was = score(id);
+        queries.counts[id] += n;
+        hit(id, n);
+        impressions[id] += n;
+        accepted[id] += accepts;
+        insert(root, query, id, was, radix);
+        if (words != null) {
+            insertWords(id, was);
+        }
+    }
+
+    private static final long FULL_WAIT = 10;       // Millis a submit waits on a full queue before checking the worker again
+
+    // Feedback in the background, batchSize events or maxDelay after the first one, whichever comes first,
+    // are applied together. Close it to apply whatever is still waiting and stop its thread
+    public FeedbackQueue newFeedbackQueue(int batchSize, long maxDelay, TimeUnit unit) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1, got " + batchSize);
+        }
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("maxDelay can't be negative, got " + maxDelay);
+        }
+        return new FeedbackQueue(batchSize, unit.toNanos(maxDelay));
+    }
+
+    // One submit waiting in a feedback queue
+    private static final class Report {
+        final String query;
+        final boolean isCorrect;
+
+        Report(String query, boolean isCorrect) {
+            this.query = query;
+            this.isCorrect = isCorrect;
+        }
+    }
+
+    // Takes feedback off the typist's thread. submit only queues the raw query, a worker thread fixes the
+    // queued queries, adds up the ones repeated within a batch and puts each total into the trie with one insert
+    public class FeedbackQueue implements AutoCloseable {
+        private final Report stop = new Report(null, false);        // Queued by close, compared by identity
+        private final LinkedBlockingQueue<Report> events = new LinkedBlockingQueue<>(1 << 16);
+        private final int batchSize;
+        private final long maxDelay;
+        private final Thread worker;
+        // Submits hold it shared while they check and queue, close holds it alone, so nothing gets in behind stop
+        private final ReadWriteLock gate = new ReentrantReadWriteLock();
+        private volatile boolean closed;
+        private boolean stopQueued;
+        private volatile Throwable failure;    // What a batch threw, say a scorer. The worker is gone after that
+
+        private FeedbackQueue(int batchSize, long maxDelay) {
+            this.batchSize = batchSize;
+            this.maxDelay = maxDelay;
+            worker = new Thread(this::run, "QuerySidekick-feedback");
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        // Same arguments as feedback, only waits when the worker is a whole queue behind. Throws once the queue is
+        // closed, and once a batch failed, including when it failed while this was queueing and it may be lost
+        public void submit(boolean isCorrect, String query) throws InterruptedException {
+            gate.readLock().lockInterruptibly();
+            try {
+                if (closed) {
+                    throw new IllegalStateException("Feedback queue is closed");
+                }
+                checkWorker();
+                if (query != null) {
+                    Report report = new Report(query, isCorrect);
+                    while (!events.offer(report, FULL_WAIT, TimeUnit.MILLISECONDS)) {
+                        checkWorker();           // A dead worker never makes room
+                    }
+                    checkWorker();
+                }
+            } finally {
+                gate.readLock().unlock();
+            }
+        }
+
+        // Applies everything submitted so far and stops the worker. Throws if a batch failed on the way
+        @Override
+        public void close() {
+            gate.writeLock().lock();      // Submits already queueing finish first, later ones find it closed
+            try {
+                closed = true;
+                while (!stopQueued && failure == null) {
+                    stopQueued = events.offer(stop, FULL_WAIT, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                gate.writeLock().unlock();
+            }
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            checkWorker();
+        }
+
+        private void checkWorker() {
+            if (failure != null) {
+                throw new IllegalStateException("Feedback worker stopped, applying a batch failed", failure);
+            }
+        }
+
+        private void run() {
+            Fixer fixer = new Fixer();           // The engine's one belongs to feedback
+            Queries batch = new Queries();
+            int[] accepts = new int[16];         // By batch id
+            boolean stopping = false;
+            try {
+                while (!stopping) {
+                    Report event = events.take();
+                    long deadline = System.nanoTime() + maxDelay;
+                    for (int n = 0; ; ) {
+                        if (event == stop) {
+                            stopping = true;
+                            break;
+                        }
+                        String query = fixer.fix(event.query);
+                        if (query.length() > 0) {
+                            int id = batch.add(query, 1);
+                            if (id == accepts.length) {
+                                accepts = Arrays.copyOf(accepts, id * 2);
+                            }
+                            accepts[id] += event.isCorrect ? 1 : 0;
+                        }
+                        if (++n == batchSize) {
+                            break;
+                        }
+                        event = events.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (event == null) {             // Waited long enough
+                            break;
+                        }
+                    }
+                    apply(batch, accepts);
+                    Arrays.fill(accepts, 0, batch.size, 0);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                try {
+                    apply(batch, accepts);
+                } catch (RuntimeException | Error failed) {
+                    failure = failed;
+                }
+            } catch (RuntimeException | Error failed) {
+                failure = failed;
+                events.clear();                  // Never applied now, submit and close say so
+            }
+        }
+
+        private void apply(Queries batch, int[] accepts) {
+            if (batch.size == 0) {
+                return;
+            }
+            synchronized (QuerySidekick.this) {
+                thaw();
+                tick();
+                for (int i = 0; i < batch.size; i++) {
+                    record(batch.text(i), batch.counts[i], accepts[i]);
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,90 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Synthetic query logs for the benchmarks. Queries are made of a few words out of a small syllable
+ * alphabet, so they share prefixes the way real searches do, and are drawn with Zipf distributed
+ * popularity.
+ */
+final class QueryLogs {
+
+    private static final String[] SYLLABLES = {
+        "an", "ba", "co", "de", "el", "fo", "ga", "hi", "in", "jo", "ka", "li", "ma", "ne",
+        "or", "pi", "qu", "ra", "si", "to", "un", "ve", "wa", "xi", "yo", "za", "st", "th"
+    };
+
+    private final String[] queries;
+    private final double[] cumulative;         // Zipf cdf over queries, most popular first
+    private final Random random;
+
+    QueryLogs(int distinct, double skew, long seed) {
+        random = new Random(seed);
+        HashSet<String> seen = new HashSet<>();
+        queries = new String[distinct];
+        for (int i = 0; i < distinct; ) {
+            String query = randomQuery();
+            if (seen.add(query)) {
+                queries[i++] = query;
+            }
+        }
+        cumulative = new double[distinct];
+        double sum = 0;
+        for (int i = 0; i < distinct; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < distinct; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    /** Next query, drawn by popularity. */
+    String next() {
+        int i = Arrays.binarySearch(cumulative, random.nextDouble());
+        return queries[Math.min(i < 0 ? -i - 1 : i, queries.length - 1)];
+    }
+
+    /** Writes a log of the given number of lines to a temporary file. */
+    Path write(int lines) throws IOException {
+        Path log = Files.createTempFile("queries", ".txt");
+        try (BufferedWriter out = Files.newBufferedWriter(log, StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < lines; i++) {
+                out.write(next());
+                out.newLine();
+            }
+        }
+        return log;
+    }
+
+    /** The next n queries, as a user would type them. */
+    String[] sample(int n) {
+        String[] sample = new String[n];
+        for (int i = 0; i < n; i++) {
+            sample[i] = next();
+        }
+        return sample;
+    }
+
+    private String randomQuery() {
+        StringBuilder query = new StringBuilder();
+        int words = 1 + random.nextInt(4);
+        for (int w = 0; w < words; w++) {
+            if (w > 0) {
+                query.append(' ');
+            }
+            int syllables = 1 + random.nextInt(4);
+            for (int s = 0; s < syllables; s++) {
+                query.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+        }
+        return query.toString();
+    }
+}
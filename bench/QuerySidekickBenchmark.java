@@ -0,0 +1,228 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Build, per keystroke guess and feedback costs of QuerySidekick on a Zipf distributed synthetic log.
+ * Run with {@code java -jar target/benchmarks.jar QuerySidekickBenchmark -prof gc} to get allocation
+ * rates next to the timings, and {@code -p lines=... -p distinct=... -p skew=...} to size the log.
+ * {@code -p k=...} sets how many guesses are kept per prefix, {@code -p radix=true,false} compares the
+ * path compressed trie with the one node per char one. {@code -p scorer=frequency,custom} checks that
+ * ranking with a scorer of your own costs nothing per keystroke, only when counts change. {@code -p words=...}
+ * turns on matching at word starts with that many nodes for it, 0 leaves it off.
+ *
+ * <p>QuerySidekick sits in the default package, which named packages can't import, so it is driven
+ * through method handles. They are constants, so the JIT inlines through them like a direct call.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class QuerySidekickBenchmark {
+
+    static final MethodHandle NEW;
+    static final MethodHandle PROCESS_OLD_QUERIES;
+    static final MethodHandle GUESS;
+    static final MethodHandle FEEDBACK;
+    static final MethodHandle NEW_SESSION;
+    static final MethodHandle NEW_FUZZY_SESSION;
+    static final MethodHandle RESET;
+    static final MethodHandle TYPE;
+    static final MethodHandle SET_SCORER;
+    static final MethodHandle SET_WORD_INDEX;
+    static final MethodHandle COUNT;
+    static final MethodHandle TEXT;
+    static final Object CUSTOM_SCORER;
+
+    static {
+        try {
+            Class<?> sidekick = Class.forName("QuerySidekick");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            NEW = lookup.findConstructor(sidekick, MethodType.methodType(void.class, int.class, boolean.class))
+                    .asType(MethodType.methodType(Object.class, int.class, boolean.class));
+            PROCESS_OLD_QUERIES = lookup.findVirtual(sidekick, "processOldQueries", MethodType.methodType(void.class, String.class))
+                    .asType(MethodType.methodType(void.class, Object.class, String.class));
+            GUESS = lookup.findVirtual(sidekick, "guess", MethodType.methodType(String[].class, char.class, int.class))
+                    .asType(MethodType.methodType(String[].class, Object.class, char.class, int.class));
+            FEEDBACK = lookup.findVirtual(sidekick, "feedback", MethodType.methodType(void.class, boolean.class, String.class))
+                    .asType(MethodType.methodType(void.class, Object.class, boolean.class, String.class));
+            Class<?> session = Class.forName("QuerySidekick$Session");
+            Class<?> suggestions = Class.forName("QuerySidekick$Suggestions");
+            NEW_SESSION = lookup.findVirtual(sidekick, "newSession", MethodType.methodType(session))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            NEW_FUZZY_SESSION = lookup.findVirtual(sidekick, "newSession", MethodType.methodType(session, int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class));
+            RESET = lookup.findVirtual(session, "reset", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            TYPE = lookup.findVirtual(session, "type", MethodType.methodType(suggestions, char.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, char.class));
+            Class<?> scorer = Class.forName("QuerySidekick$Scorer");
+            Class<?> candidate = Class.forName("QuerySidekick$Candidate");
+            SET_SCORER = lookup.findVirtual(sidekick, "setScorer", MethodType.methodType(void.class, scorer))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            SET_WORD_INDEX = lookup.findVirtual(sidekick, "setWordIndex", MethodType.methodType(void.class, int.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class));
+            COUNT = lookup.findVirtual(candidate, "count", MethodType.methodType(int.class))
+                    .asType(MethodType.methodType(int.class, Object.class));
+            TEXT = lookup.findVirtual(candidate, "text", MethodType.methodType(String.class))
+                    .asType(MethodType.methodType(String.class, Object.class));
+            MethodHandle custom = MethodHandles.lookup().findStatic(QuerySidekickBenchmark.class, "customScore",
+                    MethodType.methodType(long.class, Object.class));
+            CUSTOM_SCORER = MethodHandleProxies.asInterfaceInstance(scorer, custom);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** Lines in the old query log. */
+    @Param("1000000")
+    int lines;
+
+    /** Distinct queries the log is drawn from. */
+    @Param("200000")
+    int distinct;
+
+    /** Zipf exponent, higher means a few queries dominate. */
+    @Param("1.0")
+    double skew;
+
+    /** Guesses kept per prefix. */
+    @Param("5")
+    int k;
+
+    /** Whether runs of single children are collapsed into one node. */
+    @Param("false")
+    boolean radix;
+
+    /** frequency for the built in ranking, custom for one going through a scorer proxy. */
+    @Param("frequency")
+    String scorer;
+
+    /** Nodes the word start index may take, 0 for none. */
+    @Param("0")
+    int words;
+
+    Path log;
+    Object sidekick;
+    Object session;
+    Object fuzzySession;
+    String[] typed;            // Queries users type during the guess and feedback runs
+    int query;
+    int index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        QueryLogs logs = new QueryLogs(distinct, skew, 42);
+        log = logs.write(lines);
+        typed = logs.sample(1 << 16);
+        sidekick = (Object) NEW.invokeExact(k, radix);
+        SET_WORD_INDEX.invokeExact(sidekick, words);
+        PROCESS_OLD_QUERIES.invokeExact(sidekick, log.toString());
+        if (scorer.equals("custom")) {
+            SET_SCORER.invokeExact(sidekick, CUSTOM_SCORER);
+        }
+        session = (Object) NEW_SESSION.invokeExact(sidekick);
+        fuzzySession = (Object) NEW_FUZZY_SESSION.invokeExact(sidekick, 1);
+    }
+
+    /** Leans harder towards short queries than the built in ranking. */
+    static long customScore(Object candidate) throws Throwable {
+        return (int) COUNT.invokeExact(candidate) * 1000L - ((String) TEXT.invokeExact(candidate)).length() * 50L;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(log);
+    }
+
+    /** Reading, counting and building the trie from the whole log. */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public Object processOldQueries() throws Throwable {
+        Object fresh = (Object) NEW.invokeExact(k, radix);
+        SET_WORD_INDEX.invokeExact(fresh, words);
+        PROCESS_OLD_QUERIES.invokeExact(fresh, log.toString());
+        return fresh;
+    }
+
+    /** One keystroke, cycling through the sampled queries char by char. */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String[] guess() throws Throwable {
+        String current = typed[query];
+        String[] guesses = (String[]) GUESS.invokeExact(sidekick, current.charAt(index), index);
+        if (++index == current.length()) {
+            index = 0;
+            query = (query + 1) & (typed.length - 1);
+        }
+        return guesses;
+    }
+
+    /** One keystroke through a session's reusable suggestions view, should allocate nothing. */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object type() throws Throwable {
+        String current = typed[query];
+        if (index == 0) {
+            RESET.invokeExact(session);
+        }
+        Object suggestions = (Object) TYPE.invokeExact(session, current.charAt(index));
+        if (++index == current.length()) {
+            index = 0;
+            query = (query + 1) & (typed.length - 1);
+        }
+        return suggestions;
+    }
+
+    /** One keystroke with typos of one edit forgiven, bounded by the states a fuzzy session keeps. */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object typeFuzzy() throws Throwable {
+        String current = typed[query];
+        if (index == 0) {
+            RESET.invokeExact(fuzzySession);
+        }
+        Object suggestions = (Object) TYPE.invokeExact(fuzzySession, current.charAt(index));
+        if (++index == current.length()) {
+            index = 0;
+            query = (query + 1) & (typed.length - 1);
+        }
+        return suggestions;
+    }
+
+    /** One finished query reported back. */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void feedback() throws Throwable {
+        FEEDBACK.invokeExact(sidekick, true, typed[query]);
+        query = (query + 1) & (typed.length - 1);
+    }
+}
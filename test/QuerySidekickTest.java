@@ -0,0 +1,306 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.ToLongFunction;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ * Regression checks of QuerySidekick against a naive model: every query's count kept in a map and the top k
+ * of a prefix found by scanning all of them. Guesses are compared by score, queries that tie may come in
+ * either order. The log is generated, a few hundred KB so processOldQueries really splits it between threads.
+ */
+class QuerySidekickTest {
+
+    private static final String[] WORDS = {
+        "pizza", "piano", "pie", "best", "bet", "near", "new", "news", "weather", "west", "cheap", "chess",
+        "flights", "flight", "to", "the", "york", "yoga", "cook", "cool", "me", "map", "tokyo", "token"
+    };
+
+    @TempDir
+    Path dir;
+
+    private Path log;
+    private final Map<String, Integer> counts = new HashMap<>();
+    private final Map<String, Integer> impressions = new HashMap<>();
+    private final Map<String, Integer> accepted = new HashMap<>();
+    private final List<String> typed = new ArrayList<>();        // Queries to type, most from the log, some new
+
+    @BeforeEach
+    void writeLog() throws IOException {
+        Random random = new Random(34);
+        String[] distinct = new String[3000];
+        for (int i = 0; i < distinct.length; i++) {
+            distinct[i] = randomQuery(random);
+        }
+        log = dir.resolve("old.txt");
+        try (BufferedWriter out = Files.newBufferedWriter(log, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < 40000; i++) {
+                double u = random.nextDouble();
+                String query = distinct[(int) (u * u * u * distinct.length)];     // Skewed towards the first ones
+                String line = i % 50 == 0 ? "  " + query.toUpperCase(Locale.ROOT).replace(" ", "   ") + " \t" : query;
+                out.write(i % 997 == 0 ? "   " : line);
+                out.newLine();
+                if (i % 997 != 0) {
+                    counts.merge(query, 1, Integer::sum);
+                }
+            }
+        }
+        for (int i = 0; i < 150; i++) {
+            typed.add(i % 10 == 0 ? randomQuery(random) : distinct[random.nextInt(400)]);
+        }
+    }
+
+    private static String randomQuery(Random random) {
+        StringBuilder query = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+        for (int words = random.nextInt(4); words > 0; words--) {
+            query.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return query.toString();
+    }
+
+    private long frequency(String query) {
+        return counts.get(query) * 1000L - query.length();
+    }
+
+    private long clickThrough(String query) {
+        int accepts = accepted.getOrDefault(query, 0);
+        int shown = impressions.getOrDefault(query, 0);
+        return (long) (counts.get(query) * 1000.0 * (accepts + 1) / (shown + 2)) - query.length();
+    }
+
+    private void feedback(QuerySidekick sidekick, boolean isCorrect, String query) {
+        sidekick.feedback(isCorrect, query);
+        counts.merge(query, 1, Integer::sum);
+        impressions.merge(query, 1, Integer::sum);
+        accepted.merge(query, isCorrect ? 1 : 0, Integer::sum);
+    }
+
+    /** Best k scores among the queries that start with prefix. */
+    private long[] expected(String prefix, int k, ToLongFunction<String> score) {
+        return counts.keySet().stream().filter(query -> query.startsWith(prefix))
+                .mapToLong(score).map(s -> -s).sorted().limit(k).map(s -> -s).toArray();
+    }
+
+    /** Types every typed query into guess, checks each prefix and reports back every third query. */
+    private void typeAll(QuerySidekick sidekick, int k, ToLongFunction<String> score, boolean report) {
+        for (int t = 0; t < typed.size(); t++) {
+            String query = typed.get(t);
+            for (int i = 0; i < query.length(); i++) {
+                String[] guesses = sidekick.guess(query.charAt(i), i);
+                assertEquals(k, guesses.length);
+                assertPrefixGuesses(query.substring(0, i + 1), guesses, k, score);
+            }
+            if (report && t % 3 == 0) {
+                feedback(sidekick, t % 2 == 0, query);
+            }
+        }
+    }
+
+    private void assertPrefixGuesses(String prefix, String[] guesses, int k, ToLongFunction<String> score) {
+        long[] want = expected(prefix, k, score);
+        HashSet<String> seen = new HashSet<>();
+        for (int j = 0; j < guesses.length; j++) {
+            if (j >= want.length) {
+                assertNull(guesses[j], prefix);
+                continue;
+            }
+            String guess = guesses[j];
+            assertNotNull(guess, prefix);
+            assertTrue(guess.startsWith(prefix), () -> guess + " for " + prefix);
+            assertTrue(seen.add(guess), () -> guess + " twice for " + prefix);
+            assertEquals(want[j], score.applyAsLong(guess), () -> "guess " + guess + " for " + prefix);
+        }
+    }
+
+    private static String[] toArray(QuerySidekick.Suggestions suggestions, int k) {
+        String[] guesses = new String[k];
+        for (int i = 0; i < suggestions.size(); i++) {
+            guesses[i] = suggestions.get(i);
+        }
+        return guesses;
+    }
+
+    /** Guesses match the naive top k, across list sizes, both trie layouts and single or split up reading. */
+    @ParameterizedTest
+    @CsvSource({"1, false, 1", "5, false, 1", "8, false, 1", "1, true, 4", "5, true, 4", "8, true, 4", "5, false, 4", "5, true, 1"})
+    void guessesMatchNaiveTopK(int k, boolean radix, int threads) throws IOException {
+        QuerySidekick sidekick = new QuerySidekick(k, radix);
+        sidekick.processOldQueries(log.toString(), threads);
+        typeAll(sidekick, k, this::frequency, true);
+        typeAll(sidekick, k, this::frequency, false);        // Once more after all the feedback went in
+    }
+
+    /** A saved index loads back to the same guesses, keeps counting on top of its counts and can be saved over. */
+    @Test
+    void saveLoadRoundTrip() throws IOException {
+        Path index = dir.resolve("index.bin");
+        QuerySidekick sidekick = new QuerySidekick(5, true);
+        sidekick.processOldQueries(log.toString());
+        sidekick.save(index.toString());
+
+        QuerySidekick loaded = new QuerySidekick(5, true);
+        loaded.load(index.toString());
+        typeAll(loaded, 5, this::frequency, false);
+
+        // Saving over the file the index is mapped from, with a session still on the old mapping
+        QuerySidekick.Session session = loaded.newSession();
+        session.reset();
+        session.type('p');
+        loaded.save(index.toString());
+        assertPrefixGuesses("pi", toArray(session.type('i'), 5), 5, this::frequency);
+
+        QuerySidekick reloaded = new QuerySidekick(5, true);
+        reloaded.load(index.toString());
+        typeAll(reloaded, 5, this::frequency, true);         // Feedback thaws it onto the counts from the file
+        reloaded.save(index.toString());
+        QuerySidekick again = new QuerySidekick(5, false);
+        again.load(index.toString());
+        typeAll(again, 5, this::frequency, false);
+    }
+
+    /** An index saved with another k is refused rather than read wrong. */
+    @Test
+    void loadRejectsOtherK() throws IOException {
+        Path index = dir.resolve("k8.bin");
+        QuerySidekick sidekick = new QuerySidekick(8, false);
+        sidekick.processOldQueries(log.toString());
+        sidekick.save(index.toString());
+        try {
+            new QuerySidekick(5, false).load(index.toString());
+            fail("loaded an index of k 8 into k 5");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("8"));
+        }
+    }
+
+    /** Under click-through, queries shown without being picked drop below ones that are picked. */
+    @Test
+    void clickThroughDemotes() throws IOException {
+        QuerySidekick sidekick = new QuerySidekick(5, false);
+        sidekick.processOldQueries(log.toString());
+        sidekick.setScorer(QuerySidekick.CLICK_THROUGH);
+        String top = sidekick.guess('p', 0)[0];
+        for (int i = 0; i < 40; i++) {
+            feedback(sidekick, false, top);
+        }
+        String[] after = sidekick.guess('p', 0);
+        assertTrue(!top.equals(after[0]), () -> top + " still first after being passed over");
+        assertPrefixGuesses("p", after, 5, this::clickThrough);
+        typeAll(sidekick, 5, this::clickThrough, true);
+        typeAll(sidekick, 5, this::clickThrough, false);
+    }
+
+    /** Room the prefix matches leave is filled by the best queries with a later word starting with the prefix. */
+    @ParameterizedTest
+    @CsvSource({"false, false", "true, false", "false, true"})
+    void wordStartsFillWhatPrefixesLeave(boolean radix, boolean reload) throws IOException {
+        QuerySidekick sidekick = new QuerySidekick(5, radix);
+        sidekick.setWordIndex(Integer.MAX_VALUE);
+        sidekick.processOldQueries(log.toString());
+        if (reload) {
+            Path index = dir.resolve("words.bin");
+            sidekick.save(index.toString());
+            sidekick = new QuerySidekick(5, radix);
+            sidekick.load(index.toString());
+            sidekick.setWordIndex(Integer.MAX_VALUE);         // Thaws it, the word trie is never saved
+        }
+        List<String> prefixes = fillablePrefixes();
+        assertTrue(prefixes.size() >= 20, "too few prefixes that leave room for word starts: " + prefixes.size());
+        for (int round = 0; round < 2; round++) {
+            QuerySidekick.Session session = sidekick.newSession();
+            for (String prefix : prefixes) {
+                session.reset();
+                QuerySidekick.Suggestions suggestions = null;
+                for (int i = 0; i < prefix.length(); i++) {
+                    suggestions = session.type(prefix.charAt(i));
+                }
+                assertWordFill(prefix, suggestions);
+                String[] guesses = null;
+                for (int i = 0; i < prefix.length(); i++) {
+                    guesses = sidekick.guess(prefix.charAt(i), i);
+                }
+                assertArrayEquals(toArray(suggestions, 5), guesses, prefix);
+            }
+            for (String query : typed.subList(0, 30)) {
+                feedback(sidekick, true, query);
+            }
+        }
+    }
+
+    // Prefixes starting at a later word of a typed query, picked where the prefix matches leave room and some
+    // query has a word starting with it, so the fill really happens
+    private List<String> fillablePrefixes() {
+        List<String> prefixes = new ArrayList<>();
+        for (String query : typed) {
+            for (int space = query.indexOf(' '); space >= 0 && prefixes.size() < 40; space = query.indexOf(' ', space + 1)) {
+                for (int end = space + 2; end <= query.length(); end += 3) {
+                    String prefix = query.substring(space + 1, end);
+                    if (!prefixes.contains(prefix) && expected(prefix, 5, this::frequency).length < 5
+                            && counts.keySet().stream().anyMatch(other -> !other.startsWith(prefix) && hasWordStart(other, prefix))) {
+                        prefixes.add(prefix);
+                    }
+                }
+            }
+        }
+        return prefixes;
+    }
+
+    private void assertWordFill(String prefix, QuerySidekick.Suggestions suggestions) {
+        long[] exact = expected(prefix, 5, this::frequency);
+        long[] words = counts.keySet().stream().filter(query -> !query.startsWith(prefix) && hasWordStart(query, prefix))
+                .mapToLong(this::frequency).map(s -> -s).sorted().limit(5).map(s -> -s).toArray();
+        assertEquals(Math.min(5, exact.length + words.length), suggestions.size(), prefix);
+        HashSet<String> seen = new HashSet<>();
+        for (int j = 0; j < suggestions.size(); j++) {
+            String guess = suggestions.get(j);
+            assertTrue(seen.add(guess), () -> guess + " twice for " + prefix);
+            if (j < exact.length) {
+                assertTrue(guess.startsWith(prefix), () -> guess + " for " + prefix);
+                assertEquals(exact[j], frequency(guess), () -> "guess " + guess + " for " + prefix);
+            } else {
+                assertTrue(hasWordStart(guess, prefix), () -> guess + " has no word starting " + prefix);
+                assertEquals(words[j - exact.length], frequency(guess), () -> "word guess " + guess + " for " + prefix);
+            }
+        }
+    }
+
+    private static boolean hasWordStart(String query, String prefix) {
+        for (int space = query.indexOf(' '); space >= 0; space = query.indexOf(' ', space + 1)) {
+            if (query.startsWith(prefix, space + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Blank feedback is ignored instead of becoming a query of its own. */
+    @Test
+    void blankFeedbackIgnored() throws IOException {
+        QuerySidekick sidekick = new QuerySidekick(5, false);
+        sidekick.processOldQueries(log.toString());
+        String[] before = sidekick.guess('b', 0);
+        sidekick.feedback(true, "  \t ");
+        assertArrayEquals(before, sidekick.guess('b', 0));
+    }
+}